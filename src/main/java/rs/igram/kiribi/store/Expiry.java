@@ -0,0 +1,177 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An instance of this class keeps track of the expiry times of the objects in an <code>ObjectStore</code>.
+ *
+ * <p>Names and their expiry times are kept in an off-heap <code>NameIndex</code>. On the heap only the 
+ * number of names per bucket of expiry times is kept, so the heap footprint grows with the range of 
+ * expiry times rather than the number of names. Expired names are found by scanning the index, which 
+ * is only done once the earliest bucket is due. The index is a hint only, the expiry time in the record 
+ * header is authoritative.</p>
+ *
+ * <p>The index may draw on a memory budget shared with other stores. Once the budget is exhausted names 
+ * are no longer indexed, such objects are then only expired when they are accessed.</p>
+ *
+ * @author Michael Sargent
+ */
+final class Expiry {
+	private static final int SCAN = 1 << 12;
+	
+	private final long width;
+	private final AtomicLong budget;
+	// the offset associated with each name is its expiry time, allocated on first use
+	private NameIndex expires;
+	// the number of names in each bucket
+	private final TreeMap<Long,Integer> buckets = new TreeMap<>();
+	private int cursor;
+	// false once an expiry time could not be indexed
+	private boolean complete = true;
+	
+	/**
+	 * Initializes a newly created <code>Expiry</code> object.
+	 *
+	 * @param width The width of the time buckets in milliseconds.
+	 */
+	Expiry(long width) {
+		this(width, null);
+	}
+	
+	/**
+	 * Initializes a newly created <code>Expiry</code> object.
+	 *
+	 * @param width The width of the time buckets in milliseconds.
+	 * @param budget The remaining off-heap memory in bytes shared with other stores, or null if unbounded.
+	 */
+	Expiry(long width, AtomicLong budget) {
+		this.width = width;
+		this.budget = budget;
+	}
+	
+	/**
+	 * Records the expiry time of the object with the given name.
+	 *
+	 * <p>If the index cannot grow the name is left unindexed.</p>
+	 *
+	 * @param name The name of the object.
+	 * @param time The expiry time in milliseconds since the epoch, or 0 if the object does not expire.
+	 */
+	synchronized void put(String name, long time) {
+		remove(name);
+		if(time <= 0) return;
+		try{
+			if(expires == null) expires = NameIndex.allocate(1024, budget);
+			expires.put(name, time, 0);
+		}catch(IOException e){
+			complete = false;
+			return;
+		}
+		buckets.merge(time / width, 1, Integer::sum);
+	}
+	
+	/**
+	 * Records the expiry time of the object with the given name unless one is already recorded.
+	 *
+	 * @param name The name of the object.
+	 * @param time The expiry time in milliseconds since the epoch, or 0 if the object does not expire.
+	 */
+	synchronized void putIfAbsent(String name, long time) {
+		if(expires == null || !expires.contains(name)) put(name, time);
+	}
+	
+	/**
+	 * Forgets the expiry time of the object with the given name.
+	 *
+	 * @param name The name of the object.
+	 */
+	synchronized void remove(String name) {
+		var time = expires == null ? -1 : expires.offset(name);
+		if(time < 0) return;
+		expires.remove(name);
+		buckets.computeIfPresent(time / width, (k, n) -> n == 1 ? null : n - 1);
+	}
+	
+	/**
+	 * Returns <code>true</code> if every expiry time recorded so far was indexed, <code>false</code> if
+	 * the index could not grow.
+	 *
+	 * @return Returns <code>true</code> if every expiry time recorded so far was indexed, <code>false</code> 
+	 * otherwise.
+	 */
+	synchronized boolean complete() {
+		return complete;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the expiry time of the object with the given name is recorded, 
+	 * <code>false</code> otherwise.
+	 *
+	 * @param name The name of the object.
+	 * @return Returns <code>true</code> if the expiry time of the object with the given name is recorded, 
+	 * <code>false</code> otherwise.
+	 */
+	synchronized boolean indexed(String name) {
+		return expires != null && expires.contains(name);
+	}
+	
+	/**
+	 * Returns <code>true</code> if the object with the given name is known to have expired at the 
+	 * given time, <code>false</code> otherwise.
+	 *
+	 * @param name The name of the object.
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return Returns <code>true</code> if the object with the given name is known to have expired at the 
+	 * given time, <code>false</code> otherwise.
+	 */
+	synchronized boolean expired(String name, long now) {
+		return expires != null && StoreDelegate.expired(expires.offset(name), now);
+	}
+	
+	/**
+	 * Returns at most the given number of names of objects which expired at the given time.
+	 *
+	 * <p>The index is scanned from where the previous scan left off.</p>
+	 *
+	 * @param now The current time in milliseconds since the epoch.
+	 * @param max The maximum number of names to return.
+	 * @return Returns the names of objects which expired at the given time.
+	 */
+	synchronized List<String> due(long now, int max) {
+		var due = new ArrayList<String>();
+		if(buckets.isEmpty() || buckets.firstKey() > now / width) return due;
+		// visit each slot at most once, so a name is not returned twice
+		for(int n = 0; n < expires.capacity() && due.size() < max; n += SCAN){
+			cursor = expires.scan(cursor, Math.min(SCAN, expires.capacity() - n), t -> StoreDelegate.expired(t, now), name -> due.add(name) && due.size() < max);
+		}
+		return due;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An instance of this class keeps a bounded number of open read-only <code>FileChannel</code>s, keyed 
+ * by path, so that repeated reads of the same file do not reopen it. Writes do not go through the cache.
+ *
+ * <p>The least recently used channel is evicted when the cache is full. A channel which is evicted or 
+ * invalidated while in use is closed when it is released. Paths must be invalidated before the file
+ * they denote is moved or deleted. A channel opened concurrently with an invalidation is not cached, so
+ * a channel for a file which was moved or deleted meanwhile is never cached.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class HandleCache implements Closeable {
+	private final int capacity;
+	private final LinkedHashMap<Path,Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+	// incremented on each invalidation
+	private long generation;
+	private boolean closed;
+	
+	/**
+	 * Initializes a newly created <code>HandleCache</code> object.
+	 *
+	 * @param capacity The maximum number of open channels to keep.
+	 */
+	public HandleCache(int capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Returns the number of open channels in this cache.
+	 *
+	 * @return Returns the number of open channels in this cache.
+	 */
+	public synchronized int size() {return handles.size();}
+	
+	/**
+	 * Returns a handle to an open channel for the given path which must be closed after use.
+	 *
+	 * @param path The path of the file.
+	 * @return Returns a handle to an open read-only channel for the given path.
+	 * @throws IOException if there was a problem opening the file.
+	 */
+	Handle acquire(Path path) throws IOException {
+		long g;
+		synchronized(this){
+			var h = handles.get(path);
+			if(h != null){
+				h.refs++;
+				return h;
+			}
+			g = generation;
+		}
+		var ch = FileChannel.open(path, READ);
+		synchronized(this){
+			var h = handles.get(path);
+			if(h != null){
+				// lost a race with another thread
+				ch.close();
+			}else{
+				h = new Handle(ch);
+				if(closed || generation != g){
+					// the file may have been moved or deleted while it was opened
+					h.retired = true;
+				}else{
+					handles.put(path, h);
+					evict();
+				}
+			}
+			h.refs++;
+			return h;
+		}
+	}
+	
+	/**
+	 * Removes the channel for the given path from this cache.
+	 *
+	 * @param path The path of the file.
+	 */
+	synchronized void invalidate(Path path) {
+		generation++;
+		var h = handles.remove(path);
+		if(h != null) retire(h);
+	}
+	
+	/**
+	 * Closes all channels in this cache once they are no longer in use.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for(Handle h : handles.values()) retire(h);
+		handles.clear();
+	}
+	
+	private void evict() {
+		for(Iterator<Handle> i = handles.values().iterator(); handles.size() > capacity && i.hasNext();){
+			var h = i.next();
+			i.remove();
+			retire(h);
+		}
+	}
+	
+	private void retire(Handle h) {
+		h.retired = true;
+		if(h.refs == 0) h.dispose();
+	}
+	
+	/**
+	 * A reference to an open channel in a <code>HandleCache</code>.
+	 */
+	final class Handle implements Closeable {
+		private final FileChannel channel;
+		private int refs;
+		private boolean retired;
+		
+		private Handle(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		/**
+		 * Returns the channel of this handle.
+		 *
+		 * @return Returns the channel of this handle.
+		 */
+		FileChannel channel() {return channel;}
+		
+		/**
+		 * Releases this handle.
+		 */
+		@Override
+		public void close() {
+			synchronized(HandleCache.this){
+				if(--refs == 0 && retired) dispose();
+			}
+		}
+		
+		private void dispose() {
+			try{
+				channel.close();
+			}catch(IOException e){}
+		}
+	}
+}
\ No newline at end of file
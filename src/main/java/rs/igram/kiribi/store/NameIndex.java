@@ -0,0 +1,416 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An instance of this class maps names to a primitive offset and length, for example the location of an
+ * object in a packed file, without keeping the names on the heap.
+ *
+ * <p>The index is an open addressing hash table with linear probing. Each slot holds the 64 bit hash of 
+ * a name, the offset, the length and a reference to the UTF-8 bytes of the name in a separate key arena 
+ * which is used to verify matches on hash collisions. Both the table and the arena are held in direct or 
+ * memory-mapped buffers, so the heap footprint of an index is constant regardless of its size.</p>
+ *
+ * <p>A memory-mapped index is marked clean when it is closed. Opening a clean index reuses its contents,
+ * opening an index which was not closed cleanly yields an empty index which must be repopulated.</p>
+ *
+ * <p>Indexes backed by direct buffers may share a memory budget, in which case growing an index beyond 
+ * the remaining budget fails rather than allocating.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class NameIndex implements Closeable {
+	private static final int MAGIC = 0x4B494458;
+	private static final int HEADER = 32;
+	private static final int SLOT = 24;
+	private static final int MAX_CAPACITY = 1 << 26;
+	private static final int MIN_KEYS = 1 << 12;
+	
+	// header fields
+	private static final int CAPACITY = 4;
+	private static final int SIZE = 8;
+	private static final int USED = 12;
+	private static final int CLEAN = 16;
+	
+	// slot fields
+	private static final int HASH = 0;
+	private static final int OFFSET = 8;
+	private static final int LENGTH = 16;
+	private static final int KEY = 20;
+	
+	private final Path file;
+	private final Path keysFile;
+	// the remaining off-heap memory in bytes shared with other indexes, or null if unbounded
+	private final AtomicLong budget;
+	// the bytes of the budget held by this index
+	private long reserved;
+	private ByteBuffer slots;
+	private ByteBuffer keys;
+	private int capacity;
+	private int size;
+	private int used;
+	
+	private NameIndex(Path file, AtomicLong budget) {
+		this.file = file;
+		this.budget = budget;
+		keysFile = file == null ? null : file.resolveSibling(file.getFileName() + ".keys");
+	}
+	
+	/**
+	 * Returns a new index backed by direct buffers.
+	 *
+	 * @param capacity The expected number of names.
+	 * @return Returns a new index backed by direct buffers.
+	 */
+	public static NameIndex allocate(int capacity) {
+		try{
+			return allocate(capacity, null);
+		}catch(IOException e){
+			// direct buffers do not perform I/O
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Returns a new index backed by direct buffers drawing on the given memory budget.
+	 *
+	 * @param capacity The expected number of names.
+	 * @param budget The remaining off-heap memory in bytes shared with other indexes, or null if unbounded.
+	 * @return Returns a new index backed by direct buffers.
+	 * @throws IOException if the index would exceed the memory budget.
+	 */
+	static NameIndex allocate(int capacity, AtomicLong budget) throws IOException {
+		var index = new NameIndex(null, budget);
+		index.rehash(capacity(capacity), 0);
+		return index;
+	}
+	
+	/**
+	 * Opens the index memory-mapped from the given file, creating it if necessary.
+	 *
+	 * <p>The arena of the index is kept in a sibling file with the suffix <code>.keys</code>.</p>
+	 *
+	 * @param file The file of the index.
+	 * @param capacity The expected number of names if the index is created.
+	 * @return Returns the index memory-mapped from the given file.
+	 * @throws IOException if there was a problem opening the index.
+	 */
+	public static NameIndex open(Path file, int capacity) throws IOException {
+		var index = new NameIndex(file, null);
+		if(Files.exists(file) && Files.exists(index.keysFile) && Files.size(file) >= HEADER){
+			index.slots = map(file, Files.size(file));
+			index.keys = map(index.keysFile, Files.size(index.keysFile));
+			var s = index.slots;
+			if(s.getInt(0) == MAGIC && s.getInt(CLEAN) == 1 && s.capacity() == HEADER + (long)s.getInt(CAPACITY) * SLOT){
+				index.capacity = s.getInt(CAPACITY);
+				index.size = s.getInt(SIZE);
+				index.used = s.getInt(USED);
+				s.putInt(CLEAN, 0);
+				return index;
+			}
+		}
+		index.rehash(capacity(capacity), 0);
+		return index;
+	}
+	
+	/**
+	 * Returns the number of names in this index.
+	 *
+	 * @return Returns the number of names in this index.
+	 */
+	public synchronized int size() {return size;}
+	
+	/**
+	 * Returns the number of slots of this index.
+	 *
+	 * @return Returns the number of slots of this index.
+	 */
+	public synchronized int capacity() {return capacity;}
+	
+	/**
+	 * Returns <code>true</code> if this index contains the given name, <code>false</code> otherwise.
+	 *
+	 * @param name The name to look up.
+	 * @return Returns <code>true</code> if this index contains the given name, <code>false</code> otherwise.
+	 */
+	public synchronized boolean contains(String name) {
+		return find(bytes(name)) >= 0;
+	}
+	
+	/**
+	 * Returns the offset associated with the given name.
+	 *
+	 * @param name The name to look up.
+	 * @return Returns the offset associated with the given name or -1 if there is no such name.
+	 */
+	public synchronized long offset(String name) {
+		int i = find(bytes(name));
+		return i < 0 ? -1 : slots.getLong(slot(i) + OFFSET);
+	}
+	
+	/**
+	 * Returns the length associated with the given name.
+	 *
+	 * @param name The name to look up.
+	 * @return Returns the length associated with the given name or -1 if there is no such name.
+	 */
+	public synchronized int length(String name) {
+		int i = find(bytes(name));
+		return i < 0 ? -1 : slots.getInt(slot(i) + LENGTH);
+	}
+	
+	/**
+	 * Associates the given offset and length with the given name.
+	 *
+	 * @param name The name.
+	 * @param offset The offset.
+	 * @param length The length.
+	 * @throws IOException if there was a problem growing a memory-mapped index.
+	 */
+	public synchronized void put(String name, long offset, int length) throws IOException {
+		var k = bytes(name);
+		int i = find(k);
+		if(i < 0){
+			if(size + 1 > capacity / 4 * 3){
+				rehash(capacity << 1, k.length);
+			}else if(used + 4 + k.length > keys.capacity()){
+				rehash(capacity, k.length);
+			}
+			i = -find(k) - 1;
+			keys.putInt(used, k.length);
+			for(int j = 0; j < k.length; j++) keys.put(used + 4 + j, k[j]);
+			slots.putLong(slot(i) + HASH, hash(k));
+			slots.putInt(slot(i) + KEY, used);
+			used += 4 + k.length;
+			size++;
+		}
+		slots.putLong(slot(i) + OFFSET, offset);
+		slots.putInt(slot(i) + LENGTH, length);
+		header();
+	}
+	
+	/**
+	 * Removes the given name from this index.
+	 *
+	 * @param name The name to remove.
+	 * @return Returns <code>true</code> if this index contained the given name, <code>false</code> otherwise.
+	 */
+	public synchronized boolean remove(String name) {
+		int i = find(bytes(name));
+		if(i < 0) return false;
+		// backward shift deletion, the key bytes are reclaimed on the next rehash
+		int mask = capacity - 1;
+		for(int j = (i + 1) & mask; slots.getLong(slot(j) + HASH) != 0; j = (j + 1) & mask){
+			int home = (int)slots.getLong(slot(j) + HASH) & mask;
+			if(((j - home) & mask) >= ((j - i) & mask)){
+				for(int b = 0; b < SLOT; b += 8) slots.putLong(slot(i) + b, slots.getLong(slot(j) + b));
+				i = j;
+			}
+		}
+		for(int b = 0; b < SLOT; b += 8) slots.putLong(slot(i) + b, 0);
+		size--;
+		header();
+		return true;
+	}
+	
+	/**
+	 * Examines at most the given number of slots starting at the given cursor and passes each name whose 
+	 * offset satisfies the given filter to the given action, until the action returns <code>false</code>.
+	 *
+	 * <p>Only the names which pass the filter are decoded. Names which are removed or moved by a removal 
+	 * between scans may be missed until the scan wraps around.</p>
+	 *
+	 * @param cursor The slot to start at, a cursor returned by a previous scan.
+	 * @param count The maximum number of slots to examine.
+	 * @param filter The filter applied to offsets.
+	 * @param action The action applied to names, returns <code>false</code> to stop the scan.
+	 * @return Returns the cursor to resume the scan at.
+	 */
+	public synchronized int scan(int cursor, int count, LongPredicate filter, Predicate<String> action) {
+		int mask = capacity - 1;
+		int i = cursor & mask;
+		for(int n = 0; n < count; n++){
+			int ref = slots.getInt(slot(i) + KEY);
+			boolean match = slots.getLong(slot(i) + HASH) != 0 && filter.test(slots.getLong(slot(i) + OFFSET));
+			i = (i + 1) & mask;
+			if(match && !action.test(name(ref))) break;
+		}
+		return i;
+	}
+	
+	/**
+	 * Marks a memory-mapped index clean and flushes it to storage, or returns the memory of an index 
+	 * backed by direct buffers to its budget.
+	 */
+	@Override
+	public synchronized void close() {
+		if(file == null){
+			if(budget != null) budget.addAndGet(reserved);
+			reserved = 0;
+			return;
+		}
+		slots.putInt(CLEAN, 1);
+		((MappedByteBuffer)keys).force();
+		((MappedByteBuffer)slots).force();
+	}
+	
+	// returns the slot of the given key, or -(insertion slot + 1) if absent
+	private int find(byte[] k) {
+		long h = hash(k);
+		int mask = capacity - 1;
+		for(int i = (int)h & mask;; i = (i + 1) & mask){
+			long s = slots.getLong(slot(i) + HASH);
+			if(s == 0) return -i - 1;
+			if(s == h && matches(slots.getInt(slot(i) + KEY), k)) return i;
+		}
+	}
+	
+	private String name(int ref) {
+		var k = new byte[keys.getInt(ref)];
+		for(int j = 0; j < k.length; j++) k[j] = keys.get(ref + 4 + j);
+		return new String(k, StandardCharsets.UTF_8);
+	}
+	
+	private boolean matches(int ref, byte[] k) {
+		if(keys.getInt(ref) != k.length) return false;
+		for(int j = 0; j < k.length; j++){
+			if(keys.get(ref + 4 + j) != k[j]) return false;
+		}
+		return true;
+	}
+	
+	// rebuilds the table with the given capacity, compacting the key arena
+	private void rehash(int newCapacity, int extra) throws IOException {
+		if(newCapacity > MAX_CAPACITY) throw new IOException("Index full");
+		long live = extra + 4;
+		for(int i = 0; i < capacity; i++){
+			if(slots.getLong(slot(i) + HASH) != 0) live += 4 + keys.getInt(slots.getInt(slot(i) + KEY));
+		}
+		long keysCapacity = Math.max(MIN_KEYS, Math.min(Integer.MAX_VALUE, 2 * live));
+		if(live > keysCapacity) throw new IOException("Index full");
+		
+		if(file == null && budget != null){
+			long bytes = HEADER + (long)newCapacity * SLOT + keysCapacity;
+			if(budget.addAndGet(reserved - bytes) < 0){
+				budget.addAndGet(bytes - reserved);
+				throw new IOException("Memory budget exceeded");
+			}
+			reserved = bytes;
+		}
+		
+		var tmp = file == null ? null : file.resolveSibling(file.getFileName() + ".tmp");
+		var tmpKeys = file == null ? null : keysFile.resolveSibling(keysFile.getFileName() + ".tmp");
+		var s = allocate(tmp, HEADER + (long)newCapacity * SLOT);
+		var k = allocate(tmpKeys, keysCapacity);
+		int mask = newCapacity - 1;
+		int u = 0;
+		for(int i = 0; i < capacity; i++){
+			long h = slots.getLong(slot(i) + HASH);
+			if(h == 0) continue;
+			int ref = slots.getInt(slot(i) + KEY);
+			int len = keys.getInt(ref);
+			k.putInt(u, len);
+			for(int j = 0; j < len; j++) k.put(u + 4 + j, keys.get(ref + 4 + j));
+			int n = (int)h & mask;
+			while(s.getLong(HEADER + n * SLOT + HASH) != 0) n = (n + 1) & mask;
+			s.putLong(HEADER + n * SLOT + HASH, h);
+			s.putLong(HEADER + n * SLOT + OFFSET, slots.getLong(slot(i) + OFFSET));
+			s.putInt(HEADER + n * SLOT + LENGTH, slots.getInt(slot(i) + LENGTH));
+			s.putInt(HEADER + n * SLOT + KEY, u);
+			u += 4 + len;
+		}
+		if(file != null){
+			Files.move(tmpKeys, keysFile, REPLACE_EXISTING, ATOMIC_MOVE);
+			Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+		}
+		slots = s;
+		keys = k;
+		capacity = newCapacity;
+		used = u;
+		slots.putInt(0, MAGIC);
+		header();
+	}
+	
+	private void header() {
+		slots.putInt(CAPACITY, capacity);
+		slots.putInt(SIZE, size);
+		slots.putInt(USED, used);
+	}
+	
+	private static int slot(int i) {
+		return HEADER + i * SLOT;
+	}
+	
+	private static ByteBuffer allocate(Path path, long size) throws IOException {
+		if(path == null) return ByteBuffer.allocateDirect((int)size);
+		Files.deleteIfExists(path);
+		return map(path, size);
+	}
+	
+	private static MappedByteBuffer map(Path path, long size) throws IOException {
+		try(FileChannel ch = FileChannel.open(path, CREATE, READ, WRITE)){
+			return ch.map(READ_WRITE, 0, size);
+		}
+	}
+	
+	private static int capacity(int expected) {
+		int c = 16;
+		while(c < MAX_CAPACITY && c / 4 * 3 < expected) c <<= 1;
+		return c;
+	}
+	
+	private static byte[] bytes(String name) {
+		return name.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	// 64 bit FNV-1a followed by a finalizer, 0 marks an empty slot
+	private static long hash(byte[] k) {
+		long h = 0xcbf29ce484222325L;
+		for(byte b : k){
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+}
\ No newline at end of file
@@ -24,17 +24,26 @@
  
 package rs.igram.kiribi.store;
 
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.time.Duration;
 
 import rs.igram.kiribi.io.Decoder;
 import rs.igram.kiribi.io.Encodable;
 import rs.igram.kiribi.io.VarInputStream;
 
 import static java.nio.file.StandardCopyOption.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * An instance of this class manages persistent storage of <code>Encodeable</code> objects.
@@ -54,6 +63,15 @@ public class ObjectStore<E extends Encodable> {
 	 */
 	protected final Decoder<E> decoder;
 	
+	/**
+	 * The expiry times of objects in this object store, bucketed by second.
+	 */
+	final Expiry expiry;
+	
+	private final AtomicBoolean indexed = new AtomicBoolean();
+	// set once the expiry times of all existing objects were indexed
+	private volatile boolean complete;
+	
 	/**
 	 * Initializes a newly created <code>ObjectStore</code> object.
 	 *
@@ -70,8 +88,21 @@ public class ObjectStore<E extends Encodable> {
 	 * @param decoder The <code>Decoder</code> for elements of this object store.
 	 */
 	public ObjectStore(StoreDelegate delegate, Decoder<E> decoder) {
+		this(delegate, decoder, null);
+	}
+	
+	/**
+	 * Initializes a newly created <code>ObjectStore</code> object.
+	 *
+	 * @param delegate The <code>StoreDelege</code> for this list store.
+	 * @param decoder The <code>Decoder</code> for elements of this object store.
+	 * @param budget The remaining off-heap memory in bytes for indexing expiry times shared with other 
+	 * stores, or null if unbounded.
+	 */
+	ObjectStore(StoreDelegate delegate, Decoder<E> decoder, AtomicLong budget) {
 		this.delegate = delegate;
 		this.decoder = decoder;
+		expiry = new Expiry(1000, budget);
 	}
 	
 	/**
@@ -89,15 +120,35 @@ public class ObjectStore<E extends Encodable> {
 	}
 	
 	/**
-	 * Returns the value of <code>delegate.exists(String name)</code>.
+	 * Returns the value of <code>delegate.exists(String name)</code>, or <code>false</code> if the object
+	 * has expired.
+	 *
+	 * <p>The first invocation indexes the expiry times of existing objects. Once they are indexed an object
+	 * whose expiry time is not indexed does not expire, so its record header is only read if the index
+	 * is incomplete.</p>
 	 *
 	 * @param name The name of the object to test if it exists in this object store.
-	 * @return Returns the value of <code>delegate.exists(String name)</code>. 
+	 * @return Returns the value of <code>delegate.exists(String name)</code>, or <code>false</code> if the object
+	 * has expired.
 	 */	
 	public boolean exists(String name) {
+		if(!indexed.getAndSet(true)) index();
 		lock.lock();
 		try{
-			return delegate.exists(name);
+			var now = System.currentTimeMillis();
+			try{
+				if(expiry.indexed(name)){
+					if(!expiry.expired(name, now)) return delegate.exists(name);
+				}else if(complete && expiry.complete()){
+					// not indexed so it does not expire
+					return delegate.exists(name);
+				}
+				return !expire(name, now);
+			}catch(NoSuchFileException e){
+				return false;
+			}catch(IOException e){
+				return delegate.exists(name);
+			}
 		} finally {
 			lock.unlock();
 		}
@@ -113,6 +164,7 @@ public class ObjectStore<E extends Encodable> {
 		lock.lock();
 		try{
 			delegate.remove(name);
+			expiry.remove(name);
 		} finally {
 			lock.unlock();
 		}
@@ -127,6 +179,29 @@ public class ObjectStore<E extends Encodable> {
 	 * @throws IOException if there was a problem putting the object in this object store.
 	 */	
 	public <E extends Encodable> void put(String name, E e) throws IOException {
+		put(name, e, 0L);
+	}
+	
+	/**
+	 * Puts a new <code>Encodeable</code> object with the associated name in this object store which 
+	 * expires after the given time to live.
+	 *
+	 * <p>Once expired the object is no longer returned by <code>get</code> or reported by <code>exists</code>
+	 * and is removed lazily or by the sweeper if one was scheduled.</p>
+	 *
+	 * @param <E> The type of the object to insert.
+	 * @param name The name of the object to insert.
+	 * @param e The object to insert.
+	 * @param ttl The time to live of the object.
+	 * @throws IOException if there was a problem putting the object in this object store.
+	 * @throws IllegalArgumentException if the given time to live is negative.
+	 */	
+	public <E extends Encodable> void put(String name, E e, Duration ttl) throws IOException {
+		if(ttl.isNegative()) throw new IllegalArgumentException("Negative time to live: " + ttl);
+		put(name, e, System.currentTimeMillis() + ttl.toMillis());
+	}
+	
+	private <E extends Encodable> void put(String name, E e, long expires) throws IOException {
 		lock.lock();
 		Path path = null;
 		Path bk = null;
@@ -134,15 +209,18 @@ public class ObjectStore<E extends Encodable> {
 		try{
 			path = delegate.dir.resolve(name);
 			if(Files.exists(path)){
-				bk = delegate.dir.resolve(name+".bk");
+				bk = delegate.dir.resolve(name + StoreDelegate.BACKUP);
+				delegate.invalidate(path);
 				Files.move(path, bk, REPLACE_EXISTING, ATOMIC_MOVE);
 			}
 		
-			delegate.out(e.encode(), path);
+			delegate.out(e.encode(), path, expires);
+			expiry.put(name, expires);
 			success = true;
 		}catch(IOException e2){
 			if(bk != null){
 				try{
+					delegate.invalidate(path);
 					Files.move(bk, path, REPLACE_EXISTING, ATOMIC_MOVE);
 				}catch(IOException e3){
 					throw new IOException("Operation failed, couldn't roll back" ,e3);
@@ -159,6 +237,163 @@ public class ObjectStore<E extends Encodable> {
 		}
 	}
 
+	/**
+	 * Schedules the removal of expired objects from this object store with the given executor.
+	 *
+	 * <p>The first run indexes the expiry times of existing objects. Each run then removes at most 
+	 * <code>batch</code> expired objects, earliest first, holding the lock only while removing them. 
+	 * The rate of removal is thus bounded by <code>batch</code> objects per <code>period</code>. A failed 
+	 * run does not cancel the sweeper.</p>
+	 *
+	 * @param executor The executor to run the sweeper with.
+	 * @param period The delay between runs of the sweeper.
+	 * @param batch The maximum number of objects to remove per run.
+	 * @return Returns the future of the sweeper which can be used to cancel it.
+	 */	
+	public ScheduledFuture<?> sweep(ScheduledExecutorService executor, Duration period, int batch) {
+		return executor.scheduleWithFixedDelay(() -> {
+			try{
+				sweep(batch);
+			}catch(RuntimeException e){}
+		}, 0, period.toMillis(), MILLISECONDS);
+	}
+	
+	// indexes expiry times from record headers without holding the lock
+	private void index() {
+		try{
+			boolean ok = true;
+			for(String name : delegate.names()){
+				try{
+					expiry.putIfAbsent(name, delegate.expires(delegate.dir.resolve(name)));
+				}catch(NoSuchFileException e){
+					// removed meanwhile
+				}catch(IOException e){
+					ok = false;
+				}
+			}
+			complete = ok;
+		}catch(IOException e){}
+	}
+	
+	/**
+	 * Removes at most the given number of expired objects from this object store, indexing the expiry times 
+	 * of existing objects on the first invocation.
+	 *
+	 * @param batch The maximum number of objects to remove.
+	 */	
+	void sweep(int batch) {
+		if(!indexed.getAndSet(true)) index();
+		var now = System.currentTimeMillis();
+		var due = expiry.due(now, batch);
+		if(due.isEmpty()) return;
+		lock.lock();
+		try{
+			for(String name : due){
+				try{
+					expire(name, now);
+				}catch(IOException e){
+					expiry.remove(name);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// removes the object with the given name if its record header shows it has expired
+	private boolean expire(String name, long now) throws IOException {
+		long time;
+		try{
+			time = delegate.expires(delegate.dir.resolve(name));
+		}catch(NoSuchFileException e){
+			expiry.remove(name);
+			throw e;
+		}
+		if(StoreDelegate.expired(time, now)){
+			delegate.remove(name);
+			expiry.remove(name);
+			return true;
+		}
+		expiry.put(name, time);
+		return false;
+	}
+	
+	/**
+	 * Adds record headers to the objects of an object store written before record headers were introduced.
+	 *
+	 * <p>Objects without a record header are treated as corrupt, so this method must be invoked on such a 
+	 * store before it is recovered or used. Backup files are migrated as well, and primary files left
+	 * with a backup by an interrupted <code>put</code> are quarantined so that the backup is restored by 
+	 * <code>recover</code>. A migrated store is marked as such, so invoking this method again is a no-op.</p>
+	 *
+	 * @return Returns the number of files migrated.
+	 * @throws IOException if there was a problem migrating this object store.
+	 */	
+	public long migrate() throws IOException {
+		lock.lock();
+		try{
+			return delegate.migrate();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Restores objects orphaned by an interrupted <code>put</code> and quarantines corrupt records.
+	 *
+	 * <p>This method should be invoked at startup before this object store is used.</p>
+	 *
+	 * @return Returns the outcome of the recovery pass.
+	 * @throws IOException if there was a problem recovering this object store or it was written by an 
+	 * earlier version and was not migrated.
+	 */	
+	public Recovery recover() throws IOException {
+		return recover(n -> {});
+	}
+	
+	/**
+	 * Restores objects orphaned by an interrupted <code>put</code> and quarantines corrupt records.
+	 *
+	 * <p>This method should be invoked at startup before this object store is used. Files are scanned
+	 * in parallel and the given consumer may be invoked concurrently.</p>
+	 *
+	 * @param progress Accepts the number of files scanned so far.
+	 * @return Returns the outcome of the recovery pass.
+	 * @throws IOException if there was a problem recovering this object store or it was written by an 
+	 * earlier version and was not migrated.
+	 */	
+	public Recovery recover(LongConsumer progress) throws IOException {
+		lock.lock();
+		try{
+			return Recovery.run(delegate, progress);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Creates a consistent checkpoint of this object store in the given directory.
+	 *
+	 * <p>Writers are paused only while the objects are hard-linked into the checkpoint, the manifest
+	 * is written afterwards. Since <code>put</code> always writes a replaced object to a new file the 
+	 * checkpoint is unaffected by subsequent writes. If the target directory is on a different file store 
+	 * than this object store the objects are copied instead, which pauses writers for the duration of the copy.</p>
+	 *
+	 * @param target The directory to create the checkpoint in.
+	 * @return Returns the checkpoint.
+	 * @throws IOException if there was a problem creating the checkpoint.
+	 */	
+	public Snapshot snapshot(Path target) throws IOException {
+		List<String> names;
+		lock.lock();
+		try{
+			names = Snapshot.link(delegate, target);
+		} finally {
+			lock.unlock();
+		}
+		return Snapshot.create(target, names);
+	}
+
 	/**
 	 * Returns the object associated with the given name from this object store.
 	 *
@@ -208,6 +443,38 @@ public class ObjectStore<E extends Encodable> {
 		}
 	}
 
+	/**
+	 * Returns the object decoded by the given <code>Decoder</code> from at most the given number of leading
+	 * bytes of the object associated with the given name.
+	 *
+	 * <p>Only the requested prefix is read from storage, which makes this method suitable for reading the
+	 * leading fields of large objects. The checksum of the object is not verified.</p>
+	 *
+	 * @param <S> The type of the object to get.
+	 * @param name The name of the object to get.
+	 * @param decoder The decoder of the leading fields of the object.
+	 * @param length The number of leading bytes of the object required by the decoder.
+	 * @return Returns the object decoded from the leading bytes of the object associated with the given name
+	 * or null if there is no such object.
+	 * @throws IOException if there was a problem getting the object or the decoder read beyond the given length.
+	 * @throws IllegalArgumentException if the given length is negative.
+	 */	
+	public <S> S get(String name, Decoder<S> decoder, int length) throws IOException {
+		var path = delegate.dir.resolve(name);
+		lock.lock();
+		try(VarInputStream in = delegate.in(path, length, System.currentTimeMillis())) {
+			if(in == null){
+				expired(path);
+				return null;
+			}
+			return decoder.read(in);
+		} catch(NoSuchFileException e) {
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	/**
 	 * Returns the object associated with the given path and given <code>Decoder</code> from this object store.
 	 *
@@ -218,9 +485,20 @@ public class ObjectStore<E extends Encodable> {
 	 * @throws IOException if there was a problem getting the object.
 	 */	
 	protected <S> S get(Path path, Decoder<S> decoder) throws IOException {
-		if(!Files.exists(path)) return null;
-		try(VarInputStream in = delegate.in(path)) {
+		try(VarInputStream in = delegate.in(path, System.currentTimeMillis())) {
+			if(in == null){
+				expired(path);
+				return null;
+			}
 			return decoder.read(in);
+		} catch(NoSuchFileException e) {
+			return null;
 		}
 	}
+	
+	private void expired(Path path) throws IOException {
+		delegate.invalidate(path);
+		Files.deleteIfExists(path);
+		expiry.remove(path.getFileName().toString());
+	}
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardCopyOption.*;
+
+/**
+ * An instance of this class reports the outcome of a recovery pass over the working directory
+ * of a <code>StoreDelegate</code>.
+ *
+ * <p>A recovery pass restores backup files orphaned by an interrupted <code>put</code> and moves
+ * records without a header or with a mismatched checksum to the quarantine directory. A primary file 
+ * is kept in preference to its backup only if it is intact. Files are scanned in parallel. A working
+ * directory written by an earlier version must be migrated before it is recovered.</p>
+ *
+ * @author Michael Sargent
+ */
+public final class Recovery {
+	private final long scanned;
+	private final long restored;
+	private final long quarantined;
+	private final Duration duration;
+	
+	private Recovery(long scanned, long restored, long quarantined, Duration duration) {
+		this.scanned = scanned;
+		this.restored = restored;
+		this.quarantined = quarantined;
+		this.duration = duration;
+	}
+	
+	/**
+	 * Runs a recovery pass over the working directory of the given <code>StoreDelegate</code>.
+	 *
+	 * <p> <b>Note:</b> The caller is responsible for excluding writers for the duration of this call.</p>
+	 *
+	 * @param delegate The <code>StoreDelegate</code> to recover.
+	 * @param progress Accepts the number of files scanned so far, may be invoked concurrently.
+	 * @return Returns the outcome of the recovery pass.
+	 * @throws IOException if there was a problem recovering the working directory or it was not migrated.
+	 */
+	static Recovery run(StoreDelegate delegate, LongConsumer progress) throws IOException {
+		// records of an earlier version have no header and would all be quarantined
+		if(!delegate.current()) throw new IOException("Store not migrated: " + delegate.dir);
+		long start = System.nanoTime();
+		List<Path> files = delegate.files();
+		// primaries with a backup are handled together with their backup
+		Set<String> names = files.stream().map(p -> p.getFileName().toString()).collect(Collectors.toSet());
+		var scanned = new AtomicLong();
+		var restored = new AtomicLong();
+		var quarantined = new AtomicLong();
+		try{
+			files.parallelStream().forEach(path -> {
+				try{
+					var name = path.getFileName().toString();
+					if(name.endsWith(StoreDelegate.BACKUP)){
+						var primary = delegate.dir.resolve(name.substring(0, name.length() - StoreDelegate.BACKUP.length()));
+						if(Files.exists(primary) && delegate.verify(primary)){
+							// put completed but the backup was not deleted
+							Files.delete(path);
+						}else{
+							if(Files.exists(primary)){
+								delegate.quarantine(primary);
+								quarantined.incrementAndGet();
+							}
+							delegate.invalidate(primary);
+							Files.move(path, primary, REPLACE_EXISTING, ATOMIC_MOVE);
+							restored.incrementAndGet();
+							if(!delegate.verify(primary)){
+								delegate.quarantine(primary);
+								quarantined.incrementAndGet();
+							}
+						}
+					}else if(!names.contains(name + StoreDelegate.BACKUP) && !delegate.verify(path)){
+						delegate.quarantine(path);
+						quarantined.incrementAndGet();
+					}
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+				progress.accept(scanned.incrementAndGet());
+			});
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		return new Recovery(scanned.get(), restored.get(), quarantined.get(), Duration.ofNanos(System.nanoTime() - start));
+	}
+	
+	/**
+	 * Returns the number of files scanned.
+	 *
+	 * @return Returns the number of files scanned.
+	 */	
+	public long scanned() {return scanned;}
+	
+	/**
+	 * Returns the number of objects restored from backup files.
+	 *
+	 * @return Returns the number of objects restored from backup files.
+	 */	
+	public long restored() {return restored;}
+	
+	/**
+	 * Returns the number of corrupt records moved to the quarantine directory.
+	 *
+	 * @return Returns the number of corrupt records moved to the quarantine directory.
+	 */	
+	public long quarantined() {return quarantined;}
+	
+	/**
+	 * Returns the duration of the recovery pass.
+	 *
+	 * @return Returns the duration of the recovery pass.
+	 */	
+	public Duration duration() {return duration;}
+	
+	@Override
+	public String toString() {
+		return "Recovery[scanned=" + scanned + ", restored=" + restored + ", quarantined=" + quarantined + ", duration=" + duration + "]";
+	}
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import rs.igram.kiribi.io.Encodable;
+import rs.igram.kiribi.io.VarInput;
+import rs.igram.kiribi.io.VarInputStream;
+import rs.igram.kiribi.io.VarOutput;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * An instance of this class represents a consistent point in time copy of an <code>ObjectStore</code>.
+ *
+ * <p>A snapshot consists of a directory containing the objects and a manifest recording the size, 
+ * modification time and checksum of each object. The checksum is taken from the record header, so
+ * an object is only considered unchanged if its content is unchanged. The manifest is written last, 
+ * so a directory without a manifest is an incomplete snapshot.</p>
+ *
+ * @author Michael Sargent
+ */
+public class Snapshot implements Encodable {
+	/**
+	 * The name of the manifest file of a snapshot.
+	 */
+	protected static final String MANIFEST = "MANIFEST";
+	
+	/**
+	 * The name of the directory containing the objects of a snapshot.
+	 */
+	protected static final String OBJECTS = "objects";
+	
+	/**
+	 * The directory of this snapshot.
+	 */
+	protected final Path dir;
+	
+	/**
+	 * The entries of this snapshot keyed by name.
+	 */
+	protected final Map<String,Entry> entries;
+	
+	private Snapshot(Path dir, Map<String,Entry> entries) {
+		this.dir = dir;
+		this.entries = entries;
+	}
+	
+	private Snapshot(Path dir, VarInput in) throws IOException {
+		this.dir = dir;
+		entries = new TreeMap<>();
+		int n = in.readInt();
+		for(int i = 0; i < n; i++){
+			var name = in.readUTF();
+			entries.put(name, new Entry(in.readLong(), in.readLong(), in.readInt()));
+		}
+	}
+	
+	/**
+	 * Links the objects managed by the given <code>StoreDelegate</code> into the given snapshot directory.
+	 *
+	 * <p> <b>Note:</b> The caller is responsible for excluding writers for the duration of this call.</p>
+	 *
+	 * @param delegate The <code>StoreDelegate</code> to snapshot.
+	 * @param target The directory to create the snapshot in.
+	 * @return Returns the names of the linked objects.
+	 * @throws IOException if there was a problem linking the objects.
+	 */
+	static List<String> link(StoreDelegate delegate, Path target) throws IOException {
+		var objects = prepare(target);
+		var names = new ArrayList<String>();
+		for(String name : delegate.names()){
+			link(delegate.dir.resolve(name), objects.resolve(name));
+			names.add(name);
+		}
+		return names;
+	}
+	
+	/**
+	 * Writes the manifest of the given linked objects, completing the snapshot in the given directory.
+	 *
+	 * <p>Since the linked objects are not modified by subsequent writes this method does not need to 
+	 * exclude writers.</p>
+	 *
+	 * @param target The directory of the snapshot.
+	 * @param names The names of the linked objects.
+	 * @return Returns the snapshot.
+	 * @throws IOException if there was a problem writing the manifest.
+	 */
+	static Snapshot create(Path target, List<String> names) throws IOException {
+		var objects = target.resolve(OBJECTS);
+		var entries = new TreeMap<String,Entry>();
+		for(String name : names) entries.put(name, entry(objects.resolve(name)));
+		return new Snapshot(target, entries).commit();
+	}
+	
+	/**
+	 * Opens the snapshot in the given directory.
+	 *
+	 * @param dir The directory of the snapshot to open.
+	 * @return Returns the snapshot in the given directory.
+	 * @throws IOException if there was a problem reading the manifest or the snapshot is incomplete.
+	 */
+	public static Snapshot open(Path dir) throws IOException {
+		var manifest = dir.resolve(MANIFEST);
+		if(!Files.exists(manifest)) throw new IOException("Incomplete snapshot: " + dir);
+		try(VarInputStream in = new VarInputStream(Files.readAllBytes(manifest))) {
+			return new Snapshot(dir, in);
+		}
+	}
+	
+	/**
+	 * Returns the directory of this snapshot.
+	 *
+	 * @return Returns the directory of this snapshot.
+	 */	
+	public Path dir() {return dir;}
+	
+	/**
+	 * Returns the names of the objects in this snapshot.
+	 *
+	 * @return Returns the names of the objects in this snapshot.
+	 */	
+	public Set<String> names() {return Collections.unmodifiableSet(entries.keySet());}
+	
+	/**
+	 * Returns the path of the object with the given name in this snapshot.
+	 *
+	 * @param name The name of the object.
+	 * @return Returns the path of the object with the given name in this snapshot or null if there is no such object.
+	 */	
+	public Path path(String name) {
+		return entries.containsKey(name) ? dir.resolve(OBJECTS).resolve(name) : null;
+	}
+	
+	/**
+	 * Copies this snapshot to the given directory.
+	 *
+	 * @param target The directory to copy this snapshot to.
+	 * @return Returns the copy of this snapshot.
+	 * @throws IOException if there was a problem copying this snapshot.
+	 */
+	public Snapshot backup(Path target) throws IOException {
+		return backup(target, null);
+	}
+	
+	/**
+	 * Incrementally copies this snapshot to the given directory.
+	 *
+	 * <p>Only objects which were added or changed since the given previous backup are copied. Unchanged 
+	 * objects are hard-linked from the previous backup.</p>
+	 *
+	 * @param target The directory to copy this snapshot to.
+	 * @param previous The previous backup or null if all objects should be copied.
+	 * @return Returns the copy of this snapshot.
+	 * @throws IOException if there was a problem copying this snapshot.
+	 */
+	public Snapshot backup(Path target, Snapshot previous) throws IOException {
+		var objects = prepare(target);
+		for(Map.Entry<String,Entry> e : entries.entrySet()){
+			var name = e.getKey();
+			var dst = objects.resolve(name);
+			if(previous != null && e.getValue().equals(previous.entries.get(name))){
+				link(previous.path(name), dst);
+			}else{
+				Files.copy(path(name), dst, COPY_ATTRIBUTES);
+			}
+		}
+		return new Snapshot(target, new TreeMap<>(entries)).commit();
+	}
+		
+	@Override
+	public void write(VarOutput out) throws IOException {
+		out.writeInt(entries.size());
+		for(Map.Entry<String,Entry> e : entries.entrySet()){
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue().size);
+			out.writeLong(e.getValue().modified);
+			out.writeInt(e.getValue().checksum);
+		}
+	}
+	
+	private static Path prepare(Path target) throws IOException {
+		if(Files.exists(target.resolve(MANIFEST))) throw new IOException("Snapshot exists: " + target);
+		return Files.createDirectories(target.resolve(OBJECTS));
+	}
+	
+	private static Entry entry(Path path) throws IOException {
+		var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		try(FileChannel ch = FileChannel.open(path, READ)){
+			var b = ByteBuffer.allocate(StoreDelegate.HEADER);
+			while(b.hasRemaining() && ch.read(b, b.position()) >= 0);
+			int checksum;
+			if(!b.hasRemaining() && b.getInt(0) == StoreDelegate.MAGIC){
+				checksum = b.getInt(4);
+			}else{
+				// not a record, checksum the whole file
+				var crc = new CRC32C();
+				b = ByteBuffer.allocate(8192);
+				for(long p = 0; ch.read(b.clear(), p) > 0; p += b.position()) crc.update(b.flip());
+				checksum = (int)crc.getValue();
+			}
+			return new Entry(attrs.size(), attrs.lastModifiedTime().to(NANOSECONDS), checksum);
+		}
+	}
+	
+	private static void link(Path src, Path dst) throws IOException {
+		try{
+			Files.createLink(dst, src);
+		}catch(UnsupportedOperationException | FileSystemException e){
+			Files.copy(src, dst, COPY_ATTRIBUTES);
+		}
+	}
+	
+	private Snapshot commit() throws IOException {
+		var tmp = dir.resolve(MANIFEST + ".tmp");
+		Files.write(tmp, encode());
+		Files.move(tmp, dir.resolve(MANIFEST), REPLACE_EXISTING, ATOMIC_MOVE);
+		return this;
+	}
+	
+	/**
+	 * The size, modification time and checksum of an object in a snapshot.
+	 */
+	protected static final class Entry {
+		final long size;
+		final long modified;
+		final int checksum;
+		
+		Entry(long size, long modified, int checksum) {
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+		
+		@Override
+		public int hashCode() {return checksum;}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(o == null || !(o instanceof Entry)) return false;
+			var t = (Entry)o;
+			return size == t.size && modified == t.modified && checksum == t.checksum;
+		}
+	}
+}
\ No newline at end of file
@@ -26,9 +26,17 @@ package rs.igram.kiribi.store;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static java.nio.file.StandardCopyOption.*;
 import static java.nio.file.StandardOpenOption.*;
 
 import rs.igram.kiribi.io.VarInputStream;
@@ -39,6 +47,38 @@ import rs.igram.kiribi.io.VarInputStream;
  * @author Michael Sargent
  */
 public class StoreDelegate {
+	/**
+	 * The suffix of the backup file written while an object is being replaced.
+	 */
+	protected static final String BACKUP = ".bk";
+	
+	/**
+	 * The name of the directory corrupt files are moved to.
+	 */
+	protected static final String QUARANTINE = ".quarantine";
+	
+	/**
+	 * The name of the file marking a working directory whose records have a header.
+	 */
+	protected static final String FORMAT = ".format";
+	
+	/**
+	 * The suffix of the temporary file written while a file is being migrated.
+	 */
+	protected static final String MIGRATE = ".migrate";
+	
+	/**
+	 * The magic number identifying a record with a header.
+	 */
+	protected static final int MAGIC = 0x4B495232;
+	
+	/**
+	 * The length of a record header: the magic number, the CRC32C checksum of the remainder of
+	 * the record and the expiry time of the record in milliseconds since the epoch, or 0 if the
+	 * record does not expire.
+	 */
+	protected static final int HEADER = 16;
+	
 	/**
 	 * Flag indicating whether the directory associated with this <code>StoreDelegate</code>
 	 * existed prior to instatiation.
@@ -60,6 +100,11 @@ public class StoreDelegate {
 	 */
 	protected final Path dir;
 	
+	/**
+	 * The cache of open channels of this store delegate, or null if files are opened on each access.
+	 */
+	protected final HandleCache handles;
+	
 	/**
 	 * Initializes a newly created <code>Address</code> object
 	 * with the given parameters.
@@ -71,14 +116,43 @@ public class StoreDelegate {
 	 * @throws IOException if there was a problem instantiating an instance of this class.
 	 */
 	public StoreDelegate(Path root, String... schema) throws IOException {
+		this(root, null, schema);
+	}
+	
+	/**
+	 * Initializes a newly created <code>StoreDelegate</code> object which keeps files open in the given
+	 * <code>HandleCache</code>.
+	 *
+	 * <p> <b>Note:</b> The schema are used to construct a path from the root directory to the working directory.</p>
+	 * 
+	 * @param root The root directory of this store delegate.
+	 * @param handles The cache of open channels, or null if files should be opened on each access.
+	 * @param schema The schema of this store delegate.
+	 * @throws IOException if there was a problem instantiating an instance of this class.
+	 */
+	public StoreDelegate(Path root, HandleCache handles, String... schema) throws IOException {
 		this.root = root;
 		this.schema = schema;
+		this.handles = handles;
 		
-		var d = root;
-		for(String s : schema) d = root.resolve(s);
-		dir = d;
+		dir = dir(root, schema);
 		preexisting = Files.exists(dir);
 		if(!preexisting) Files.createDirectories(dir);
+		// an empty working directory has nothing to migrate
+		if(!current() && files().isEmpty()) mark();
+	}
+	
+	/**
+	 * Returns the working directory of a store delegate with the given root directory and schema.
+	 *
+	 * @param root The root directory.
+	 * @param schema The schema.
+	 * @return Returns the working directory of a store delegate with the given root directory and schema.
+	 */	
+	static Path dir(Path root, String... schema) {
+		var d = root;
+		for(String s : schema) d = root.resolve(s);
+		return d;
 	}
 	
 	/**
@@ -109,6 +183,36 @@ public class StoreDelegate {
 		return Files.exists(dir.resolve(name));
 	}
 		
+	/**
+	 * Returns the names of the objects in the working directory of this store delegate.
+	 *
+	 * <p> <b>Note:</b> Backup files and directories are not included.</p>
+	 *
+	 * @return Returns the names of the objects in the working directory of this store delegate.
+	 * @throws IOException if there was a problem listing the working directory.
+	 */	
+	public List<String> names() throws IOException {
+		return files().stream()
+			.map(p -> p.getFileName().toString())
+			.filter(n -> !n.endsWith(BACKUP) && !n.endsWith(MIGRATE))
+			.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Returns the files in the working directory of this store delegate, including backup files but
+	 * excluding the format marker and its temporary file.
+	 *
+	 * @return Returns the files in the working directory of this store delegate.
+	 * @throws IOException if there was a problem listing the working directory.
+	 */	
+	List<Path> files() throws IOException {
+		try(Stream<Path> s = Files.list(dir)){
+			return s.filter(Files::isRegularFile)
+				.filter(p -> !p.getFileName().toString().startsWith(FORMAT))
+				.collect(Collectors.toList());
+		}
+	}
+		
 	/**
 	 * Deletes the file with the given name.
 	 *
@@ -116,7 +220,126 @@ public class StoreDelegate {
 	 * @throws IOException if there was a problem deleting the file with the given name.
 	 */	
 	public void remove(String name) throws IOException {
-		Files.deleteIfExists(dir.resolve(name));
+		var path = dir.resolve(name);
+		invalidate(path);
+		Files.deleteIfExists(path);
+	}
+	
+	/**
+	 * Returns <code>true</code> if the record in the file determined by the given path has a header
+	 * and a matching checksum, <code>false</code> otherwise.
+	 *
+	 * @param path The path of the file to verify.
+	 * @return Returns <code>true</code> if the record in the file determined by the given path is intact, 
+	 * <code>false</code> otherwise.
+	 * @throws IOException if there was a problem reading the file with the given path.
+	 */	
+	protected boolean verify(Path path) throws IOException {
+		return payload(bytes(path)) != null;
+	}
+	
+	/**
+	 * Moves the file determined by the given path to the quarantine directory.
+	 *
+	 * @param path The path of the file to quarantine.
+	 * @throws IOException if there was a problem moving the file.
+	 */	
+	protected void quarantine(Path path) throws IOException {
+		var q = Files.createDirectories(dir.resolve(QUARANTINE));
+		invalidate(path);
+		Files.move(path, q.resolve(path.getFileName()), REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Returns <code>true</code> if the working directory of this store delegate is marked as holding
+	 * records with a header, <code>false</code> if it was written by an earlier version and must be 
+	 * migrated.
+	 *
+	 * @return Returns <code>true</code> if the working directory of this store delegate is marked as holding
+	 * records with a header, <code>false</code> otherwise.
+	 * @throws IOException if there was a problem reading the format marker.
+	 */	
+	protected boolean current() throws IOException {
+		var f = dir.resolve(FORMAT);
+		if(!Files.exists(f)) return false;
+		var b = Files.readAllBytes(f);
+		return b.length == 4 && ByteBuffer.wrap(b).getInt() == MAGIC;
+	}
+	
+	/**
+	 * Adds record headers to the objects and backup files of a working directory written before record 
+	 * headers were introduced, and marks the working directory as current.
+	 *
+	 * <p>Old records have no checksum, so a primary file whose backup file remains from an interrupted
+	 * <code>put</code> cannot be verified. Such primary files are quarantined, and the backup file is
+	 * restored by the next recovery pass. Migration is a no-op on a working directory which is already
+	 * marked, and an interrupted migration can be resumed by invoking this method again.</p>
+	 *
+	 * <p> <b>Note:</b> The caller is responsible for excluding writers for the duration of this call.</p>
+	 *
+	 * @return Returns the number of files migrated.
+	 * @throws IOException if there was a problem migrating the working directory.
+	 */	
+	protected long migrate() throws IOException {
+		if(current()) return 0;
+		long n = 0;
+		for(Path path : files()){
+			var name = path.getFileName().toString();
+			if(name.endsWith(MIGRATE)){
+				// left by an interrupted migration, unless already overwritten by migrating its file
+				Files.deleteIfExists(path);
+			}else if(!name.endsWith(BACKUP) && Files.exists(dir.resolve(name + BACKUP)) && !verify(path)){
+				// left by an interrupted put
+				quarantine(path);
+			}else if(migrate(name)){
+				n++;
+			}
+		}
+		mark();
+		return n;
+	}
+	
+	/**
+	 * Rewrites the file with the given name with a record header if it was written before record headers 
+	 * were introduced.
+	 *
+	 * <p> <b>Note:</b> Any file which does not start with a magic number is taken to be an old record, 
+	 * so this method must only be invoked on stores written by earlier versions and before they are
+	 * recovered.</p>
+	 *
+	 * @param name The name of the file to migrate.
+	 * @return Returns <code>true</code> if the file was rewritten, <code>false</code> if it already had a header.
+	 * @throws IOException if there was a problem migrating the file with the given name.
+	 */	
+	protected boolean migrate(String name) throws IOException {
+		var path = dir.resolve(name);
+		var b = bytes(path);
+		int magic = b.length >= 4 ? ByteBuffer.wrap(b).getInt(0) : 0;
+		if(magic == MAGIC) return false;
+		var tmp = dir.resolve(name + MIGRATE);
+		out(b, tmp);
+		invalidate(path);
+		Files.move(tmp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+		return true;
+	}
+	
+	/**
+	 * Returns the expiry time of the record in the file determined by the given path.
+	 *
+	 * <p>Only the header of the record is read. The cache of open channels is bypassed, so that indexing
+	 * the expiry times of a store neither evicts channels in use nor caches a channel for every file.</p>
+	 *
+	 * @param path The path of the file.
+	 * @return Returns the expiry time of the record in milliseconds since the epoch, or 0 if the 
+	 * record does not expire.
+	 * @throws IOException if there was a problem reading the file with the given path.
+	 */	
+	protected long expires(Path path) throws IOException {
+		ByteBuffer header;
+		try(FileChannel ch = FileChannel.open(path, READ)){
+			header = read(ch, HEADER);
+		}
+		return header.position() < HEADER || header.getInt(0) != MAGIC ? 0 : header.getLong(8);
 	}
 	
 	/**
@@ -126,23 +349,151 @@ public class StoreDelegate {
 	 * @param path The path containing the bytes which will be used to initialize the <code>VarInputStream</code>.
 	 * @return Returns a <code>VarInputStream</code> initialized with the bytes contained in the 
 	 * file determined by the given path.
-	 * @throws IOException if there was a problem reading the file with the given path.
+	 * @throws IOException if there was a problem reading the file with the given path or its checksum
+	 * did not match.
 	 */	
 	protected VarInputStream in(Path path) throws IOException {
-		var b = Files.readAllBytes(path);
-        return new VarInputStream(b);
+		return in(path, 0);
+	}
+	
+	/**
+	 * Returns a <code>VarInputStream</code> initialized with the bytes contained in the 
+	 * file determined by the given path, or null if the record expired at the given time.
+	 *
+	 * @param path The path containing the bytes which will be used to initialize the <code>VarInputStream</code>.
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return Returns a <code>VarInputStream</code> initialized with the bytes contained in the 
+	 * file determined by the given path, or null if the record expired at the given time.
+	 * @throws IOException if there was a problem reading the file with the given path or its checksum
+	 * did not match.
+	 */	
+	protected VarInputStream in(Path path, long now) throws IOException {
+		var b = bytes(path);
+		var payload = payload(b);
+		if(payload == null) throw new IOException("Corrupt record: " + path);
+		if(expired(ByteBuffer.wrap(b).getLong(8), now)) return null;
+        return new VarInputStream(payload);
     }
     
+	/**
+	 * Returns a <code>VarInputStream</code> initialized with at most the given number of bytes from the
+	 * start of the record contained in the file determined by the given path, or null if the record 
+	 * expired at the given time.
+	 *
+	 * <p>Only the header and the requested prefix of the record are read. The checksum of the record
+	 * is not verified.</p>
+	 *
+	 * @param path The path containing the bytes which will be used to initialize the <code>VarInputStream</code>.
+	 * @param length The maximum number of bytes of the record to read.
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return Returns a <code>VarInputStream</code> initialized with at most the given number of bytes from the
+	 * start of the record, or null if the record expired at the given time.
+	 * @throws IOException if there was a problem reading the file with the given path or it has no header.
+	 * @throws IllegalArgumentException if the given length is negative.
+	 */	
+	protected VarInputStream in(Path path, int length, long now) throws IOException {
+		if(length < 0) throw new IllegalArgumentException("Negative length: " + length);
+		var b = read(path, HEADER + (long)length);
+		int n = b.position();
+		if(n < HEADER || b.getInt(0) != MAGIC) throw new IOException("Corrupt record: " + path);
+		if(expired(b.getLong(8), now)) return null;
+		return new VarInputStream(Arrays.copyOfRange(b.array(), HEADER, n));
+	}
+	
     /**
-	 * Writes the given byte array to the file determined by the given path.
+	 * Writes the given byte array to the file determined by the given path, preceded by a header
+	 * containing its checksum.
 	 *
 	 * @param b The byte array to write.
 	 * @param path The path to write to.
 	 * @throws IOException if there was a problem writing the given byte array to the file determined by the given path.
 	 */	
 	protected void out(byte[] b, Path path) throws IOException {
+		out(b, path, 0);
+	}
+	
+    /**
+	 * Writes the given byte array to the file determined by the given path, preceded by a header
+	 * containing its checksum and the given expiry time.
+	 *
+	 * @param b The byte array to write.
+	 * @param path The path to write to.
+	 * @param expires The expiry time in milliseconds since the epoch, or 0 if the record does not expire.
+	 * @throws IOException if there was a problem writing the given byte array to the file determined by the given path.
+	 */	
+	protected void out(byte[] b, Path path, long expires) throws IOException {
+		var record = ByteBuffer.allocate(HEADER + b.length).putInt(MAGIC).putInt(0).putLong(expires).put(b).array();
+		ByteBuffer.wrap(record).putInt(4, checksum(record, 8, record.length - 8));
 		try(OutputStream out = Files.newOutputStream(path, CREATE, TRUNCATE_EXISTING, WRITE)){
-        	out.write(b);
-        }
+			out.write(record);
+		}
+	}
+	
+	/**
+	 * Closes the cached channel for the given path, if any. This method must be invoked before the file
+	 * determined by the given path is moved or deleted.
+	 *
+	 * @param path The path of the file.
+	 */	
+	protected void invalidate(Path path) {
+		if(handles != null) handles.invalidate(path);
+	}
+	
+	// marks the working directory as holding records with a header
+	private void mark() throws IOException {
+		var tmp = dir.resolve(FORMAT + MIGRATE);
+		Files.write(tmp, ByteBuffer.allocate(4).putInt(MAGIC).array());
+		Files.move(tmp, dir.resolve(FORMAT), REPLACE_EXISTING, ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Returns <code>true</code> if the given expiry time is at or before the given time, 
+	 * <code>false</code> otherwise.
+	 *
+	 * @param expires The expiry time in milliseconds since the epoch, or 0 if there is no expiry time.
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return Returns <code>true</code> if the given expiry time is at or before the given time, 
+	 * <code>false</code> otherwise.
+	 */	
+	static boolean expired(long expires, long now) {
+		return expires > 0 && expires <= now;
+	}
+	
+	// reads the whole of the given file
+	private byte[] bytes(Path path) throws IOException {
+		if(handles == null) return Files.readAllBytes(path);
+		var b = read(path, Long.MAX_VALUE);
+		return b.hasRemaining() ? Arrays.copyOf(b.array(), b.position()) : b.array();
+	}
+	
+	// reads at most the given number of bytes from the start of the given file
+	private ByteBuffer read(Path path, long length) throws IOException {
+		if(handles == null){
+			try(FileChannel ch = FileChannel.open(path, READ)){
+				return read(ch, length);
+			}
+		}
+		try(HandleCache.Handle h = handles.acquire(path)){
+			return read(h.channel(), length);
+		}
+	}
+	
+	private static ByteBuffer read(FileChannel ch, long length) throws IOException {
+		var b = ByteBuffer.allocate((int)Math.min(length, ch.size()));
+		while(b.hasRemaining() && ch.read(b, b.position()) >= 0);
+		return b;
+	}
+	
+	// returns the payload of the given record or null if it has no header or is corrupt
+	private static byte[] payload(byte[] b) {
+		if(b.length < HEADER || ByteBuffer.wrap(b).getInt(0) != MAGIC) return null;
+		if(ByteBuffer.wrap(b).getInt(4) != checksum(b, 8, b.length - 8)) return null;
+		return Arrays.copyOfRange(b, HEADER, b.length);
+	}
+	
+	private static int checksum(byte[] b, int off, int len) {
+		var crc = new CRC32C();
+		crc.update(b, off, len);
+		return (int)crc.getValue();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rs.igram.kiribi.io.Decoder;
+import rs.igram.kiribi.io.Encodable;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * An instance of this class owns a root directory and hands out the <code>StoreDelegate</code> and 
+ * <code>ObjectStore</code> for each schema under it.
+ *
+ * <p>Each working directory is opened at most once, so every user of a schema shares the same store and lock, and
+ * reopening a schema is a map lookup. All stores share a single executor for background work, and expired 
+ * objects of all stores are removed by a single sweeper task, so the number of threads does not grow
+ * with the number of schemas. Likewise, if enabled, a single <code>HandleCache</code> bounds the number of
+ * open files across all schemas, and a single memory budget bounds the off-heap memory used to index 
+ * expiry times across all schemas.</p>
+ *
+ * @author Michael Sargent
+ */
+public class StoreEnvironment implements Closeable {
+	/**
+	 * The root directory of this store environment.
+	 */
+	protected final Path root;
+	
+	/**
+	 * The executor shared by the stores of this store environment.
+	 */
+	protected final ScheduledExecutorService executor;
+	
+	/**
+	 * The cache of open channels shared by the stores of this store environment, or null if disabled.
+	 */
+	protected final HandleCache handles;
+	
+	// the remaining off-heap memory in bytes for indexing expiry times, or null if unbounded
+	private final AtomicLong budget;
+	// keyed by working directory, since different schemas may share a working directory
+	private final Map<Path,StoreDelegate> delegates = new ConcurrentHashMap<>();
+	private final Map<Path,ObjectStore<?>> stores = new ConcurrentHashMap<>();
+	private ScheduledFuture<?> sweeper;
+	
+	/**
+	 * Initializes a newly created <code>StoreEnvironment</code> object with a single background thread.
+	 *
+	 * @param root The root directory of this store environment.
+	 * @throws IOException if there was a problem creating the root directory.
+	 */
+	public StoreEnvironment(Path root) throws IOException {
+		this(root, 1);
+	}
+	
+	/**
+	 * Initializes a newly created <code>StoreEnvironment</code> object.
+	 *
+	 * @param root The root directory of this store environment.
+	 * @param threads The number of background threads shared by the stores of this store environment.
+	 * @throws IOException if there was a problem creating the root directory.
+	 */
+	public StoreEnvironment(Path root, int threads) throws IOException {
+		this(root, threads, 0);
+	}
+	
+	/**
+	 * Initializes a newly created <code>StoreEnvironment</code> object.
+	 *
+	 * @param root The root directory of this store environment.
+	 * @param threads The number of background threads shared by the stores of this store environment.
+	 * @param handles The maximum number of open channels shared by the stores of this store environment,
+	 * or 0 if files should be opened on each access.
+	 * @throws IOException if there was a problem creating the root directory.
+	 */
+	public StoreEnvironment(Path root, int threads, int handles) throws IOException {
+		this(root, threads, handles, 0);
+	}
+	
+	/**
+	 * Initializes a newly created <code>StoreEnvironment</code> object.
+	 *
+	 * <p>Once the memory budget is exhausted the expiry times of further objects are not indexed, such 
+	 * objects are then only removed when they are accessed after they expire.</p>
+	 *
+	 * @param root The root directory of this store environment.
+	 * @param threads The number of background threads shared by the stores of this store environment.
+	 * @param handles The maximum number of open channels shared by the stores of this store environment,
+	 * or 0 if files should be opened on each access.
+	 * @param budget The maximum off-heap memory in bytes used to index expiry times by the stores of this 
+	 * store environment, or 0 if unbounded.
+	 * @throws IOException if there was a problem creating the root directory.
+	 */
+	public StoreEnvironment(Path root, int threads, int handles, long budget) throws IOException {
+		this.root = root;
+		this.handles = handles > 0 ? new HandleCache(handles) : null;
+		this.budget = budget > 0 ? new AtomicLong(budget) : null;
+		Files.createDirectories(root);
+		executor = Executors.newScheduledThreadPool(threads, r -> {
+			var t = new Thread(r, "kiribi-store");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	/**
+	 * Returns the root directory of this store environment.
+	 *
+	 * @return Returns the root directory of this store environment.
+	 */	
+	public Path root() {return root;}
+	
+	/**
+	 * Returns the executor shared by the stores of this store environment.
+	 *
+	 * @return Returns the executor shared by the stores of this store environment.
+	 */	
+	public ScheduledExecutorService executor() {return executor;}
+	
+	/**
+	 * Returns the <code>StoreDelegate</code> for the given schema, creating it if necessary.
+	 *
+	 * @param schema The schema of the store delegate.
+	 * @return Returns the <code>StoreDelegate</code> for the given schema.
+	 * @throws IOException if there was a problem creating the store delegate.
+	 */	
+	public StoreDelegate delegate(String... schema) throws IOException {
+		try{
+			return delegates.computeIfAbsent(StoreDelegate.dir(root, schema), k -> {
+				try{
+					return new StoreDelegate(root, handles, schema);
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+			});
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Returns the <code>ObjectStore</code> for the given schema, creating it if necessary.
+	 *
+	 * <p> <b>Note:</b> The given decoder is used only if the object store is created by this call.</p>
+	 *
+	 * @param <E> The type of the elements of the object store.
+	 * @param decoder The <code>Decoder</code> for elements of the object store.
+	 * @param schema The schema of the object store.
+	 * @return Returns the <code>ObjectStore</code> for the given schema.
+	 * @throws IOException if there was a problem creating the object store.
+	 */	
+	@SuppressWarnings("unchecked")
+	public <E extends Encodable> ObjectStore<E> store(Decoder<E> decoder, String... schema) throws IOException {
+		var delegate = delegate(schema);
+		return (ObjectStore<E>)stores.computeIfAbsent(delegate.dir, k -> new ObjectStore<E>(delegate, decoder, budget));
+	}
+	
+	/**
+	 * Schedules the removal of expired objects from the stores of this store environment.
+	 *
+	 * <p>A single task removes at most <code>batch</code> expired objects per store per run, holding the lock 
+	 * of each store only while removing its objects. A failure in one store does not stop the sweeper 
+	 * or the removal of expired objects from other stores. Rescheduling replaces the previous sweeper.</p>
+	 *
+	 * @param period The delay between runs of the sweeper.
+	 * @param batch The maximum number of objects to remove per store per run.
+	 */	
+	public synchronized void sweep(Duration period, int batch) {
+		if(sweeper != null) sweeper.cancel(false);
+		sweeper = executor.scheduleWithFixedDelay(() -> {
+			for(ObjectStore<?> store : stores.values()){
+				try{
+					store.sweep(batch);
+				}catch(RuntimeException e){}
+			}
+		}, 0, period.toMillis(), MILLISECONDS);
+	}
+	
+	/**
+	 * Stops the background work of this store environment and closes its cached channels.
+	 */	
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		if(handles != null) handles.close();
+	}
+}
\ No newline at end of file
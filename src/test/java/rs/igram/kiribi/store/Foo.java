@@ -70,6 +70,8 @@ public class Foo implements Encodable {
    	   	b = in.readBytes();
    	}
    	   
+   	public long l() { return l; }
+   	   
    	@Override
    	public void write(VarOutput out) throws IOException {
    	   	out.writeLong(l);
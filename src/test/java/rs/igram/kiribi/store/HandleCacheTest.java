@@ -0,0 +1,92 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HandleCacheTest {
+   @TempDir Path root;
+   
+   @Test
+   public void testEviction() throws IOException {
+   	   var cache = new HandleCache(2);
+   	   for(String name : new String[]{"a", "b", "c"}) Files.createFile(root.resolve(name));
+   	   var a = cache.acquire(root.resolve("a"));
+   	   a.close();
+   	   cache.acquire(root.resolve("b")).close();
+   	   
+   	   // a is most recently used
+   	   cache.acquire(root.resolve("a")).close();
+   	   cache.acquire(root.resolve("c")).close();
+   	   assertEquals(2, cache.size());
+   	   assertTrue(a.channel().isOpen());
+   	   
+   	   var b = cache.acquire(root.resolve("b"));
+   	   assertEquals(2, cache.size());
+   	   assertFalse(a.channel().isOpen());
+   	   
+   	   // evicted while in use
+   	   cache.acquire(root.resolve("a")).close();
+   	   cache.acquire(root.resolve("c")).close();
+   	   assertTrue(b.channel().isOpen());
+   	   b.close();
+   	   assertFalse(b.channel().isOpen());
+   	   
+   	   // read-only
+   	   try(var h = cache.acquire(root.resolve("a"))){
+   	   	   assertThrows(NonWritableChannelException.class, () -> h.channel().write(ByteBuffer.allocate(1)));
+   	   }
+   	   
+   	   assertThrows(NoSuchFileException.class, () -> cache.acquire(root.resolve("d")));
+   }
+	
+   @Test
+   public void testInvalidate() throws IOException {
+   	   var cache = new HandleCache(2);
+   	   var path = Files.createFile(root.resolve("a"));
+   	   var a = cache.acquire(path);
+   	   cache.invalidate(path);
+   	   assertEquals(0, cache.size());
+   	   assertTrue(a.channel().isOpen());
+   	   a.close();
+   	   assertFalse(a.channel().isOpen());
+   	   
+   	   a = cache.acquire(path);
+   	   a.close();
+   	   cache.close();
+   	   assertFalse(a.channel().isOpen());
+   	   assertEquals(0, cache.size());
+   }
+}
\ No newline at end of file
@@ -0,0 +1,127 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class NameIndexTest {
+   @TempDir Path root;
+   int n = 100000;
+   
+   @Test
+   public void testIndex() throws IOException {
+   	   var index = NameIndex.allocate(16);
+   	   for(int i = 0; i < n; i++) index.put("name-" + i, i, i % 100);
+   	   assertEquals(n, index.size());
+   	   
+   	   for(int i = 0; i < n; i += 2) assertTrue(index.remove("name-" + i));
+   	   assertFalse(index.remove("name-0"));
+   	   assertEquals(n / 2, index.size());
+   	   
+   	   for(int i = 0; i < n; i++){
+   	   	   var name = "name-" + i;
+   	   	   if(i % 2 == 0){
+   	   	   	   assertFalse(index.contains(name));
+   	   	   	   assertEquals(-1, index.offset(name));
+   	   	   	   assertEquals(-1, index.length(name));
+   	   	   }else{
+   	   	   	   assertEquals(i, index.offset(name));
+   	   	   	   assertEquals(i % 100, index.length(name));
+   	   	   }
+   	   }
+   	   
+   	   index.put("name-1", 7, 8);
+   	   assertEquals(7, index.offset("name-1"));
+   	   assertEquals(8, index.length("name-1"));
+   	   assertEquals(n / 2, index.size());
+   }
+	
+   @Test
+   public void testMapped() throws IOException {
+   	   var file = root.resolve("index");
+   	   var index = NameIndex.open(file, 16);
+   	   for(int i = 0; i < n; i++) index.put("name-" + i, i, i % 100);
+   	   index.remove("name-0");
+   	   index.close();
+   	   
+   	   index = NameIndex.open(file, 16);
+   	   assertEquals(n - 1, index.size());
+   	   assertFalse(index.contains("name-0"));
+   	   for(int i = 1; i < n; i++) assertEquals(i, index.offset("name-" + i));
+   	   
+   	   // not closed cleanly
+   	   index = NameIndex.open(file, 16);
+   	   assertEquals(0, index.size());
+   	   assertFalse(index.contains("name-1"));
+   }
+	
+   @Test
+   public void testScan() throws IOException {
+   	   var index = NameIndex.allocate(16);
+   	   for(int i = 0; i < n; i++) index.put("name-" + i, i, 0);
+   	   
+   	   var names = new HashSet<String>();
+   	   int cursor = 0;
+   	   for(int i = 0; i < index.capacity(); i += 1000){
+   	   	   cursor = index.scan(cursor, 1000, o -> o % 10 == 0, names::add);
+   	   }
+   	   assertEquals(n / 10, names.size());
+   	   assertTrue(names.contains("name-10"));
+   	   assertFalse(names.contains("name-11"));
+   	   
+   	   names.clear();
+   	   index.scan(0, index.capacity(), o -> true, name -> names.add(name) && names.size() < 5);
+   	   assertEquals(5, names.size());
+   }
+   
+   @Test
+   public void testBudget() throws IOException {
+   	   var budget = new AtomicLong(1 << 20);
+   	   var index = NameIndex.allocate(16, budget);
+   	   assertTrue(budget.get() < 1 << 20);
+   	   
+   	   int i = 0;
+   	   try{
+   	   	   for(;; i++) index.put("name-" + i, i, 0);
+   	   }catch(IOException e){
+   	   	   assertEquals("Memory budget exceeded", e.getMessage());
+   	   }
+   	   assertTrue(budget.get() >= 0);
+   	   assertEquals(i, index.size());
+   	   assertEquals(i - 1, index.offset("name-" + (i - 1)));
+   	   
+   	   index.close();
+   	   assertEquals(1 << 20, budget.get());
+   	   assertThrows(IOException.class, () -> NameIndex.allocate(16, new AtomicLong(16)));
+   }
+}
\ No newline at end of file
@@ -30,11 +30,14 @@ import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -113,4 +116,218 @@ public class ObjectStoreTest {
    	   
    	   assertEquals(foo, test);
    }
+	
+   @Test
+   public void testRecover() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   var dir = delegate.dir;
+   	   
+   	   // orphaned backup
+   	   var foo = new Foo();
+   	   store.put("foo", foo);
+   	   Files.move(dir.resolve("foo"), dir.resolve("foo.bk"));
+   	   
+   	   // interrupted write
+   	   var bar = new Foo();
+   	   store.put("bar", bar);
+   	   Files.copy(dir.resolve("bar"), dir.resolve("bar.bk"));
+   	   var b = Files.readAllBytes(dir.resolve("bar"));
+   	   Files.write(dir.resolve("bar"), Arrays.copyOf(b, b.length - 1));
+   	   
+   	   // completed write
+   	   var baz = new Foo();
+   	   store.put("baz", baz);
+   	   Files.copy(dir.resolve("baz"), dir.resolve("baz.bk"));
+   	   
+   	   // corrupt record
+   	   store.put("qux", new Foo());
+   	   Files.write(dir.resolve("qux"), new byte[0]);
+   	   
+   	   // torn writes without a valid header
+   	   var zero = new Foo();
+   	   store.put("zero", zero);
+   	   Files.copy(dir.resolve("zero"), dir.resolve("zero.bk"));
+   	   Files.write(dir.resolve("zero"), new byte[4096]);
+   	   var cut = new Foo();
+   	   store.put("cut", cut);
+   	   Files.copy(dir.resolve("cut"), dir.resolve("cut.bk"));
+   	   Files.write(dir.resolve("cut"), Arrays.copyOf(Files.readAllBytes(dir.resolve("cut")), 6));
+   	   
+   	   var recovery = store.recover();
+   	   assertEquals(10, recovery.scanned());
+   	   assertEquals(4, recovery.restored());
+   	   assertEquals(4, recovery.quarantined());
+   	   assertEquals(zero, store.get("zero"));
+   	   assertEquals(cut, store.get("cut"));
+   	   
+   	   assertEquals(foo, store.get("foo"));
+   	   assertEquals(bar, store.get("bar"));
+   	   assertEquals(baz, store.get("baz"));
+   	   assertFalse(store.exists("qux"));
+   	   assertFalse(store.exists("baz.bk"));
+   	   assertTrue(Files.exists(dir.resolve(StoreDelegate.QUARANTINE).resolve("qux")));
+   }
+	
+   @Test
+   public void testExpiry() throws Exception {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   
+   	   var foo = new Foo();
+   	   store.put("a", foo, Duration.ofHours(1));
+   	   store.put("b", new Foo(), Duration.ofMillis(50));
+   	   store.put("c", new Foo(), Duration.ofMillis(50));
+   	   store.put("d", new Foo(), Duration.ofMillis(50));
+   	   store.put("d", new Foo());
+   	   Thread.sleep(100);
+   	   
+   	   assertEquals(foo, store.get("a"));
+   	   assertFalse(store.exists("b"));
+   	   assertFalse(delegate.exists("b"));
+   	   assertNull(store.get("c"));
+   	   assertFalse(delegate.exists("c"));
+   	   assertTrue(store.exists("d"));
+   	   
+   	   var s = store;
+   	   assertThrows(IllegalArgumentException.class, () -> s.put("g", new Foo(), Duration.ofMillis(-System.currentTimeMillis())));
+   	   assertFalse(store.exists("g"));
+   	   
+   	   // not indexed, e.g. after a restart
+   	   store.put("e", new Foo(), Duration.ofMillis(50));
+   	   Thread.sleep(100);
+   	   store = new ObjectStore(delegate, Foo::new);
+   	   assertFalse(store.exists("e"));
+   	   assertFalse(delegate.exists("e"));
+   	   assertFalse(store.exists("f"));
+   	   
+   	   // once indexed the header of an object which is not indexed is not read
+   	   delegate.out(new Foo().encode(), delegate.dir.resolve("d"), 1);
+   	   assertTrue(store.exists("d"));
+   	   assertNull(store.get("d"));
+   }
+	
+   @Test
+   public void testSweep() throws Exception {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   for(int i = 0; i < 5; i++) store.put("" + i, new Foo(), Duration.ofMillis(50));
+   	   store.put("foo", new Foo());
+   	   Thread.sleep(100);
+   	   assertEquals(5, store.expiry.due(System.currentTimeMillis(), 10).size());
+   	   
+   	   var executor = Executors.newSingleThreadScheduledExecutor();
+   	   try{
+   	   	   // a fresh store must index expiry times from the record headers
+   	   	   var future = new ObjectStore(delegate, Foo::new).sweep(executor, Duration.ofMillis(10), 2);
+   	   	   for(int i = 0; i < 200 && delegate.names().size() > 1; i++) Thread.sleep(10);
+   	   	   future.cancel(false);
+   	   }finally{
+   	   	   executor.shutdownNow();
+   	   }
+   	   assertEquals(List.of("foo"), delegate.names());
+   }
+	
+   @Test
+   public void testProjection() throws Exception {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   
+   	   var foo = new Foo();
+   	   store.put("foo", foo);
+   	   assertEquals(foo.l(), store.get("foo", VarInput::readLong, 8));
+   	   assertThrows(IOException.class, () -> store.get("foo", Foo::new, 8));
+   	   assertNull(store.get("bar", VarInput::readLong, 8));
+   	   
+   	   // longer than the object
+   	   assertEquals(foo, store.get("foo", Foo::new, 1 << 30));
+   	   assertEquals(foo, store.get("foo", Foo::new, Integer.MAX_VALUE));
+   	   assertThrows(IllegalArgumentException.class, () -> store.get("foo", Foo::new, -1));
+   	   
+   	   store.put("baz", foo, Duration.ofMillis(50));
+   	   Thread.sleep(100);
+   	   assertNull(store.get("baz", VarInput::readLong, 8));
+   	   assertFalse(delegate.exists("baz"));
+   }
+	
+   @Test
+   public void testCachedIO() throws IOException {
+   	   var cache = new HandleCache(4);
+   	   var delegate = new StoreDelegate(root, cache, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   
+   	   for(int i = 0; i < 3; i++){
+   	   	   var foo = new Foo();
+   	   	   store.put("foo", foo);
+   	   	   assertEquals(foo, store.get("foo"));
+   	   	   assertEquals(foo.l(), store.get("foo", VarInput::readLong, 8));
+   	   }
+   	   assertEquals(1, cache.size());
+   	   assertFalse(store.exists("foo.bk"));
+   	   
+   	   var snapshot = store.snapshot(root.resolve("s"));
+   	   var foo = new Foo();
+   	   store.put("foo", foo);
+   	   // writes are not cached
+   	   assertEquals(0, cache.size());
+   	   assertEquals(foo, store.get("foo"));
+   	   assertFalse(Arrays.equals(Files.readAllBytes(snapshot.path("foo")), Files.readAllBytes(delegate.dir.resolve("foo"))));
+   	   
+   	   store.remove("foo");
+   	   assertEquals(0, cache.size());
+   	   assertNull(store.get("foo"));
+   	   assertEquals(0, cache.size());
+   	   
+   	   // indexing expiry times bypasses the cache
+   	   new ObjectStore(new StoreDelegate(root, scheme), Foo::new).put("bar", new Foo(), Duration.ofMinutes(1));
+   	   var fresh = new ObjectStore(delegate, Foo::new);
+   	   fresh.sweep(10);
+   	   assertTrue(fresh.expiry.indexed("bar"));
+   	   assertEquals(0, cache.size());
+   }
+	
+   @Test
+   public void testMigrate() throws IOException {
+   	   // a store written before record headers were introduced
+   	   var dir = Files.createDirectories(StoreDelegate.dir(root, scheme));
+   	   var foo = new Foo();
+   	   Files.write(dir.resolve("foo"), foo.encode());
+   	   
+   	   // interrupted put with a torn primary
+   	   var bar = new Foo();
+   	   Files.write(dir.resolve("bar.bk"), bar.encode());
+   	   Files.write(dir.resolve("bar"), Arrays.copyOf(bar.encode(), 3));
+   	   
+   	   // orphaned backup
+   	   var baz = new Foo();
+   	   Files.write(dir.resolve("baz.bk"), baz.encode());
+   	   
+   	   // interrupted migration
+   	   Files.write(dir.resolve("foo" + StoreDelegate.MIGRATE), new byte[3]);
+   	   
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   assertThrows(IOException.class, () -> store.get("foo"));
+   	   assertThrows(IOException.class, () -> store.recover());
+   	   
+   	   assertEquals(3, store.migrate());
+   	   assertFalse(Files.exists(dir.resolve("foo" + StoreDelegate.MIGRATE)));
+   	   assertTrue(Files.exists(dir.resolve(StoreDelegate.QUARANTINE).resolve("bar")));
+   	   
+   	   // torn records are not wrapped once migrated
+   	   var qux = new Foo();
+   	   store.put("qux", qux);
+   	   Files.write(dir.resolve("zero"), new byte[64]);
+   	   assertEquals(0, store.migrate());
+   	   
+   	   var recovery = store.recover();
+   	   assertEquals(2, recovery.restored());
+   	   assertEquals(1, recovery.quarantined());
+   	   assertEquals(foo, store.get("foo"));
+   	   assertEquals(bar, store.get("bar"));
+   	   assertEquals(baz, store.get("baz"));
+   	   assertEquals(qux, store.get("qux"));
+   	   assertFalse(store.exists("zero"));
+   	   assertFalse(delegate.names().contains(StoreDelegate.FORMAT));
+   }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SnapshotTest {
+   @TempDir Path root;
+   String scheme = "a";
+   
+   @Test
+   public void testSnapshot() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Foo::new); 
+   	   
+   	   store.put("foo", new Foo());
+   	   store.put("bar", new Foo());
+   	   var b = Files.readAllBytes(delegate.dir.resolve("foo"));
+   	   
+   	   var snapshot = store.snapshot(root.resolve("s1"));
+   	   assertEquals(Set.of("foo", "bar"), snapshot.names());
+   	   
+   	   store.put("foo", new Foo());
+   	   store.remove("bar");
+   	   
+   	   assertTrue(Arrays.equals(b, Files.readAllBytes(snapshot.path("foo"))));
+   	   assertTrue(Files.exists(snapshot.path("bar")));
+   	   assertNull(snapshot.path("baz"));
+   	   
+   	   var test = Snapshot.open(snapshot.dir());
+   	   assertEquals(snapshot.names(), test.names());
+   	   
+   	   assertThrows(IOException.class, () -> store.snapshot(root.resolve("s1")));
+   	   assertThrows(IOException.class, () -> Snapshot.open(root.resolve("s2")));
+   }
+	
+   @Test
+   public void testBackup() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   
+   	   store.put("foo", new Bar(1, "a"));
+   	   store.put("bar", new Bar(2, "b"));
+   	   var b1 = store.snapshot(root.resolve("s1")).backup(root.resolve("b1"));
+   	   
+   	   store.put("foo", new Bar(3, "cc"));
+   	   var s2 = store.snapshot(root.resolve("s2"));
+   	   var b2 = s2.backup(root.resolve("b2"), b1);
+   	   
+   	   assertEquals(Set.of("foo", "bar"), b2.names());
+   	   assertTrue(Files.isSameFile(b1.path("bar"), b2.path("bar")));
+   	   assertFalse(Files.isSameFile(b1.path("foo"), b2.path("foo")));
+   	   assertTrue(Arrays.equals(Files.readAllBytes(s2.path("foo")), Files.readAllBytes(b2.path("foo"))));
+   }
+	
+   @Test
+   public void testSameSizeRewrite() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var store = new ObjectStore(delegate, Bar::new); 
+   	   
+   	   for(int i = 0; i < 20; i++){
+   	   	   store.put("foo", new Bar(i, "a"));
+   	   	   var b1 = store.snapshot(root.resolve("s" + i)).backup(root.resolve("b" + i));
+   	   	   
+   	   	   // same size, likely within the same timestamp tick
+   	   	   store.put("foo", new Bar(i, "b"));
+   	   	   var s2 = store.snapshot(root.resolve("t" + i));
+   	   	   var b2 = s2.backup(root.resolve("c" + i), b1);
+   	   	   
+   	   	   assertEquals(Files.size(b1.path("foo")), Files.size(b2.path("foo")));
+   	   	   assertFalse(Files.isSameFile(b1.path("foo"), b2.path("foo")));
+   	   	   assertEquals(new Bar(i, "b"), store.get("foo"));
+   	   	   assertTrue(Arrays.equals(Files.readAllBytes(s2.path("foo")), Files.readAllBytes(b2.path("foo"))));
+   	   }
+   }
+}
\ No newline at end of file
@@ -103,4 +103,59 @@ public class StoreDelegateTest {
    	   in.readFully(test);
    	   assertTrue(Arrays.equals(b, test));
    }
+	
+   @Test
+   public void testChecksum() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var name = "e";
+   	   var path = delegate.dir.resolve(name);
+   	   
+   	   var b = new byte[100];
+   	   new SecureRandom().nextBytes(b);
+   	   
+   	   delegate.out(b, path);
+   	   assertTrue(delegate.verify(path));
+   	   
+   	   var c = Files.readAllBytes(path);
+   	   c[c.length - 1] ^= 1;
+   	   Files.write(path, c);
+   	   assertFalse(delegate.verify(path));
+   	   assertThrows(IOException.class, () -> delegate.in(path));
+   }
+	
+   @Test
+   public void testExpires() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var path = delegate.dir.resolve("f");
+   	   var b = new byte[100];
+   	   
+   	   delegate.out(b, path);
+   	   assertEquals(0, delegate.expires(path));
+   	   assertNotNull(delegate.in(path, Long.MAX_VALUE));
+   	   
+   	   delegate.out(b, path, 1000);
+   	   assertEquals(1000, delegate.expires(path));
+   	   assertNotNull(delegate.in(path, 999));
+   	   assertNull(delegate.in(path, 1000));
+   	   assertNotNull(delegate.in(path));
+   	   
+   	   Files.write(path, new byte[6]);
+   	   assertEquals(0, delegate.expires(path));
+   }
+	
+   @Test
+   public void testPrefix() throws IOException {
+   	   var delegate = new StoreDelegate(root, scheme); 
+   	   var path = delegate.dir.resolve("g");
+   	   
+   	   var b = new byte[100];
+   	   new SecureRandom().nextBytes(b);
+   	   delegate.out(b, path, 1000);
+   	   
+   	   var test = new byte[10];
+   	   delegate.in(path, 10, 999).readFully(test);
+   	   assertTrue(Arrays.equals(Arrays.copyOf(b, 10), test));
+   	   assertEquals(100, delegate.in(path, 200, 999).skip(1000));
+   	   assertNull(delegate.in(path, 10, 1000));
+   }
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+/* 
+ * MIT License
+ * 
+ * Copyright (c) 2020 Igram, d.o.o.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+ 
+package rs.igram.kiribi.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StoreEnvironmentTest {
+   @TempDir Path root;
+   
+   @Test
+   public void testStores() throws IOException {
+   	   var env = new StoreEnvironment(root);
+   	   try(env){
+   	   	   var delegate = env.delegate("a");
+   	   	   assertSame(delegate, env.delegate("a"));
+   	   	   assertNotSame(delegate, env.delegate("b"));
+   	   	   
+   	   	   var store = env.store(Foo::new, "a");
+   	   	   assertSame(store, env.store(Foo::new, "a"));
+   	   	   assertSame(delegate, store.delegate);
+   	   	   
+   	   	   // schemas resolving to the same working directory
+   	   	   assertSame(env.store(Foo::new, "b"), env.store(Foo::new, "x", "b"));
+   	   	   
+   	   	   var foo = new Foo();
+   	   	   store.put("foo", foo);
+   	   	   assertEquals(foo, env.store(Foo::new, "a").get("foo"));
+   	   }
+   	   assertTrue(env.executor().isShutdown());
+   }
+	
+   @Test
+   public void testSweep() throws Exception {
+   	   try(var env = new StoreEnvironment(root)){
+   	   	   for(int i = 0; i < 10; i++){
+   	   	   	   var store = env.store(Foo::new, "" + i);
+   	   	   	   store.put("foo", new Foo(), Duration.ofMillis(50));
+   	   	   	   store.put("bar", new Foo());
+   	   	   }
+   	   	   env.sweep(Duration.ofMillis(10), 10);
+   	   	   for(int i = 0; i < 10; i++){
+   	   	   	   var delegate = env.delegate("" + i);
+   	   	   	   for(int j = 0; j < 200 && delegate.exists("foo"); j++) Thread.sleep(10);
+   	   	   	   assertFalse(delegate.exists("foo"));
+   	   	   	   assertTrue(delegate.exists("bar"));
+   	   	   }
+   	   }
+   }
+	
+   @Test
+   public void testBudget() throws Exception {
+   	   try(var env = new StoreEnvironment(root, 1, 0, 1)){
+   	   	   var store = env.store(Foo::new, "a");
+   	   	   store.put("foo", new Foo(), Duration.ofMillis(50));
+   	   	   assertFalse(store.expiry.indexed("foo"));
+   	   	   assertTrue(store.exists("foo"));
+   	   	   
+   	   	   // expired on access
+   	   	   Thread.sleep(60);
+   	   	   assertFalse(store.exists("foo"));
+   	   	   assertNull(store.get("foo"));
+   	   }
+   }
+}
\ No newline at end of file